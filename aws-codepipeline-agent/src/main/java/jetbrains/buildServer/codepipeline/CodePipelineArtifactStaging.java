@@ -0,0 +1,159 @@
+package jetbrains.buildServer.codepipeline;
+
+import com.amazonaws.client.builder.ExecutorFactory;
+import com.amazonaws.services.codepipeline.model.Artifact;
+import com.amazonaws.services.codepipeline.model.S3ArtifactLocation;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.transfer.Transfer;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.S3Util;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Plans artifact transfers: prefetches input artifact sizes, picks a staging folder with enough free space
+ * and chooses transfer concurrency.
+ *
+ * @author vbedrosova
+ */
+final class CodePipelineArtifactStaging {
+  // keep some space for the build itself
+  private static final long MIN_FREE_SPACE = 100L * 1024 * 1024;
+
+  private static final int MAX_HEAD_THREADS = 10;
+
+  // the SDK downloads objects uploaded in parts using parallel ranged requests, assume parts of this size
+  private static final long EXPECTED_PART_SIZE = 8L * 1024 * 1024;
+  private static final int MAX_TRANSFER_THREADS = 32;
+
+  private CodePipelineArtifactStaging() {
+  }
+
+  /**
+   * @return the first of the candidate folders which has enough available space or null if there is no such folder
+   */
+  @Nullable
+  public static File chooseFolder(@NotNull List<File> candidates, long requiredSpace) {
+    for (File folder : candidates) {
+      if (hasSpace(folder, requiredSpace)) return folder;
+    }
+    return null;
+  }
+
+  public static boolean hasSpace(@NotNull File folder, long requiredSpace) {
+    return getAvailableSpace(folder) >= requiredSpace;
+  }
+
+  /**
+   * @return human-readable available space for each of the folders, computed the same way as in {@link #chooseFolder(List, long)}
+   */
+  @NotNull
+  public static String describeAvailableSpace(@NotNull List<File> candidates) {
+    final StringBuilder sb = new StringBuilder();
+    for (File folder : candidates) {
+      sb.append("\n").append(folder.getAbsolutePath()).append(": ")
+        .append(StringUtil.formatFileSize(Math.max(0, getAvailableSpace(folder)))).append(" available (")
+        .append(StringUtil.formatFileSize(getUsableSpace(folder))).append(" usable - ")
+        .append(StringUtil.formatFileSize(MIN_FREE_SPACE)).append(" kept free for the build)");
+    }
+    return sb.toString();
+  }
+
+  private static long getAvailableSpace(@NotNull File folder) {
+    return getUsableSpace(folder) - MIN_FREE_SPACE;
+  }
+
+  private static long getUsableSpace(@NotNull File folder) {
+    final File existing = getExistingParent(folder);
+    return existing == null ? 0 : existing.getUsableSpace();
+  }
+
+  @Nullable
+  private static File getExistingParent(@NotNull File folder) {
+    File existing = folder.getAbsoluteFile();
+    while (existing != null && !existing.exists()) {
+      existing = existing.getParentFile();
+    }
+    return existing;
+  }
+
+  /**
+   * Requests S3 object metadata for all the artifacts in parallel
+   * @return artifact sizes in bytes in the order of the artifacts
+   */
+  @NotNull
+  public static List<Long> fetchSizes(@NotNull final AmazonS3 s3Client, @NotNull List<Artifact> artifacts) throws Throwable {
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.min(artifacts.size(), MAX_HEAD_THREADS));
+    try {
+      final List<Future<Long>> futures = new ArrayList<Future<Long>>();
+      for (Artifact artifact : artifacts) {
+        final S3ArtifactLocation s3Location = artifact.getLocation().getS3Location();
+        futures.add(executor.submit(new Callable<Long>() {
+          @Override
+          public Long call() throws Exception {
+            return s3Client.getObjectMetadata(s3Location.getBucketName(), s3Location.getObjectKey()).getContentLength();
+          }
+        }));
+      }
+      final List<Long> sizes = new ArrayList<Long>();
+      for (Future<Long> f : futures) {
+        try {
+          sizes.add(f.get());
+        } catch (ExecutionException e) {
+          throw e.getCause();
+        }
+      }
+      return sizes;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public static long sum(@NotNull Collection<Long> sizes) {
+    long sum = 0;
+    for (Long s : sizes) sum += s;
+    return sum;
+  }
+
+  /**
+   * Same as {@link S3Util#withTransferManager(AmazonS3, S3Util.WithTransferManager)} but with
+   * the thread pool sized for the expected number of parts of the transferred objects:
+   * a few threads for small artifacts and more than the SDK default for large ones
+   */
+  @NotNull
+  public static <T extends Transfer> Collection<T> withTransferManager(@NotNull AmazonS3 s3Client,
+                                                                        @NotNull Collection<Long> sizes,
+                                                                        @NotNull S3Util.WithTransferManager<T> withTransferManager) throws Throwable {
+    final int threadCount = getThreadCount(sizes);
+    final TransferManager manager = TransferManagerBuilder.standard()
+      .withS3Client(s3Client)
+      .withExecutorFactory(new ExecutorFactory() {
+        @Override
+        public ExecutorService newExecutor() {
+          return Executors.newFixedThreadPool(threadCount);
+        }
+      })
+      .build();
+    try {
+      final Collection<T> transfers = withTransferManager.run(manager);
+      for (T t : transfers) {
+        t.waitForCompletion();
+      }
+      return transfers;
+    } finally {
+      manager.shutdownNow(true);
+    }
+  }
+
+  private static int getThreadCount(@NotNull Collection<Long> sizes) {
+    long parts = 0;
+    for (Long s : sizes) parts += Math.max(1, (s + EXPECTED_PART_SIZE - 1) / EXPECTED_PART_SIZE);
+    return (int) Math.max(1, Math.min(MAX_TRANSFER_THREADS, parts));
+  }
+}
@@ -23,12 +23,15 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
 import static jetbrains.buildServer.codepipeline.CodePipelineConstants.ARTIFACT_INPUT_FOLDER_CONFIG_PARAM;
 import static jetbrains.buildServer.codepipeline.CodePipelineConstants.ARTIFACT_OUTPUT_FOLDER_CONFIG_PARAM;
+import static jetbrains.buildServer.codepipeline.CodePipelineConstants.ARTIFACT_STAGING_FOLDERS_CONFIG_PARAM;
 import static jetbrains.buildServer.codepipeline.CodePipelineUtil.getJobId;
 
 /**
@@ -38,10 +41,18 @@ public class CodePipelineBuildListener extends AgentLifeCycleAdapter {
   @NotNull
   private static final Logger LOG = Logger.getLogger(CodePipelineBuildListener.class);
 
+  private static final String INSUFFICIENT_DISK_SPACE_PROBLEM_TYPE = "CODEPIPELINE_INSUFFICIENT_DISK_SPACE";
+
+  @NotNull
+  private final CodePipelineJobResultOutbox myJobResultOutbox;
+
   private boolean myJobInputProcessed;
   private String myJobID;
+  private File myInputStagingFolder;
 
-  public CodePipelineBuildListener(@NotNull final EventDispatcher<AgentLifeCycleListener> agentDispatcher) {
+  public CodePipelineBuildListener(@NotNull final EventDispatcher<AgentLifeCycleListener> agentDispatcher,
+                                   @NotNull final CodePipelineJobResultOutbox jobResultOutbox) {
+    myJobResultOutbox = jobResultOutbox;
     agentDispatcher.addListener(this);
   }
 
@@ -49,6 +60,25 @@ public class CodePipelineBuildListener extends AgentLifeCycleAdapter {
   public void buildStarted(@NotNull AgentRunningBuild runningBuild) {
     myJobInputProcessed = false;
     myJobID = null;
+    myInputStagingFolder = null;
+
+    // an agent runs one build at a time, so whatever is left in its staging folders is from a killed or crashed agent
+    for (File folder : getAgentStagingFolders(runningBuild)) {
+      final File[] leftovers = folder.listFiles();
+      if (leftovers == null) continue;
+      for (File f : leftovers) {
+        LOG.info(msgForBuild("Removing job input artifacts left from a previous build: " + f.getAbsolutePath(), runningBuild));
+        FileUtil.delete(f);
+      }
+    }
+  }
+
+  @Override
+  public void buildFinished(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+    if (myInputStagingFolder != null) {
+      FileUtil.delete(myInputStagingFolder);
+      myInputStagingFolder = null;
+    }
   }
 
   @Override
@@ -98,11 +128,25 @@ public class CodePipelineBuildListener extends AgentLifeCycleAdapter {
           if (inputArtifacts.isEmpty()) {
             LOG.debug(msgForBuild("No input artifacts provided for the job with ID: " + myJobID, build));
           } else {
+            final AmazonS3 s3Client = getArtifactS3Client(jobData.getArtifactCredentials(), params);
+            final List<Long> sizes = CodePipelineArtifactStaging.fetchSizes(s3Client, inputArtifacts);
+            final long requiredSpace = CodePipelineArtifactStaging.sum(sizes);
+
+            final List<File> stagingFolders = getInputStagingFolders(build);
+            final File inputFolder = CodePipelineArtifactStaging.chooseFolder(stagingFolders, requiredSpace);
+            if (inputFolder == null) {
+              failOnInsufficientSpace(build, stagingFolders, requiredSpace);
+              return null;
+            }
 
-            final File inputFolder = new File(params.get(ARTIFACT_INPUT_FOLDER_CONFIG_PARAM));
+            if (!inputFolder.equals(new File(params.get(ARTIFACT_INPUT_FOLDER_CONFIG_PARAM)))) {
+              build.getBuildLogger().warning("Not enough space for job input artifacts in " + params.get(ARTIFACT_INPUT_FOLDER_CONFIG_PARAM) + ", will use " + inputFolder.getAbsolutePath());
+              build.addSharedConfigParameter(ARTIFACT_INPUT_FOLDER_CONFIG_PARAM, inputFolder.getAbsolutePath());
+              myInputStagingFolder = inputFolder;
+            }
             FileUtil.createDir(inputFolder);
 
-            final Collection<Download> downloads = S3Util.withTransferManager(getArtifactS3Client(jobData.getArtifactCredentials(), params), new S3Util.WithTransferManager<Download>() {
+            final Collection<Download> downloads = CodePipelineArtifactStaging.withTransferManager(s3Client, sizes, new S3Util.WithTransferManager<Download>() {
               @NotNull
               @Override
               public Collection<Download> run(@NotNull final TransferManager manager) throws Throwable {
@@ -120,7 +164,7 @@ public class CodePipelineBuildListener extends AgentLifeCycleAdapter {
             });
             // for backward compatibility, TW-47902
             for (Download d : downloads) {
-              makeArtifactCopy(inputFolder, getInputArtifactFile(inputFolder, d.getKey()), d.getKey(), build);
+              makeArtifactLink(inputFolder, getInputArtifactFile(inputFolder, d.getKey()), d.getKey(), build);
             }
             if (!jobData.getOutputArtifacts().isEmpty()) {
               FileUtil.createDir(new File(params.get(ARTIFACT_OUTPUT_FOLDER_CONFIG_PARAM)));
@@ -134,18 +178,75 @@ public class CodePipelineBuildListener extends AgentLifeCycleAdapter {
     });
   }
 
+  @NotNull
+  private List<File> getInputStagingFolders(@NotNull AgentRunningBuild build) {
+    final Map<String, String> params = build.getSharedConfigParameters();
+
+    final List<File> folders = new ArrayList<File>();
+    folders.add(new File(params.get(ARTIFACT_INPUT_FOLDER_CONFIG_PARAM)));
+
+    for (File f : getAgentStagingFolders(build)) {
+      folders.add(new File(f, String.valueOf(build.getBuildId())));
+    }
+    return folders;
+  }
+
+  /**
+   * @return folders for this agent under the configured staging folders, several agents may share a staging folder
+   */
+  @NotNull
+  private List<File> getAgentStagingFolders(@NotNull AgentRunningBuild build) {
+    final List<File> folders = new ArrayList<File>();
+
+    final String stagingFolders = build.getSharedConfigParameters().get(ARTIFACT_STAGING_FOLDERS_CONFIG_PARAM);
+    if (StringUtil.isNotEmpty(stagingFolders)) {
+      final String agentFolder = "CodePipeline/" + FileUtil.fixDirectoryName(build.getAgentConfiguration().getName());
+      for (String f : stagingFolders.split("[,\n]")) {
+        if (!StringUtil.isEmptyOrSpaces(f)) folders.add(new File(f.trim(), agentFolder));
+      }
+    }
+    return folders;
+  }
+
+  private void failOnInsufficientSpace(@NotNull AgentRunningBuild build, @NotNull List<File> stagingFolders, long requiredSpace) {
+    final String message = "Not enough disk space for job input artifacts: " + StringUtil.formatFileSize(requiredSpace) + " required, available:" +
+      CodePipelineArtifactStaging.describeAvailableSpace(stagingFolders) +
+      "\nFree some space on the agent or specify additional folders in the " + ARTIFACT_STAGING_FOLDERS_CONFIG_PARAM + " configuration parameter";
+
+    LOG.error(msgForBuild(message, build));
+    build.getBuildLogger().logBuildProblem(BuildProblemData.createBuildProblem(
+      calculateIdentity(build, INSUFFICIENT_DISK_SPACE_PROBLEM_TYPE), INSUFFICIENT_DISK_SPACE_PROBLEM_TYPE, message));
+
+    publishJobFailure(build, message);
+  }
+
   @NotNull
   private File getInputArtifactFile(@NotNull File inputFolder, @NotNull String s3ObjectKey) {
     return new File(inputFolder, new File(s3ObjectKey).getParentFile().getName() + CodePipelineUtil.getArchiveExtension(s3ObjectKey));
   }
 
-  private void makeArtifactCopy(@NotNull File inputFolder, @NotNull File artifactFile, @NotNull String path, @NotNull AgentRunningBuild build) {
+  private void makeArtifactLink(@NotNull File inputFolder, @NotNull File artifactFile, @NotNull String path, @NotNull AgentRunningBuild build) {
     final File dest = new File(inputFolder, path);
     FileUtil.createParentDirs(dest);
+    try {
+      Files.createLink(dest.toPath(), artifactFile.toPath());
+      return;
+    } catch (IOException e) {
+      LOG.debug(msgForBuild("Failed to create hard link " + dest + " to " + artifactFile + ", will copy it", build), e);
+    } catch (UnsupportedOperationException e) {
+      LOG.debug(msgForBuild("Hard links are not supported for " + dest + ", will copy " + artifactFile, build), e);
+    }
+    // the copy wasn't taken into account when choosing the input folder
+    if (!CodePipelineArtifactStaging.hasSpace(inputFolder, artifactFile.length())) {
+      build.getBuildLogger().warning("Not enough disk space to copy job input artifact " + artifactFile.getAbsolutePath() + " to " + dest.getAbsolutePath() +
+        ", use " + artifactFile.getAbsolutePath() + " instead");
+      return;
+    }
     try {
       FileUtil.copy(artifactFile, dest);
     } catch (IOException e) {
       LOG.error(msgForBuild("Failed to copy " + artifactFile + " to " + dest, build), e);
+      build.getBuildLogger().warning("Failed to copy job input artifact " + artifactFile.getAbsolutePath() + " to " + dest.getAbsolutePath() + ": " + e.getMessage());
     }
   }
 
@@ -160,9 +261,9 @@ public class CodePipelineBuildListener extends AgentLifeCycleAdapter {
         try {
           codePipelineClient = clients.createCodePipeLineClient();
           if (build.isBuildFailingOnServer()) {
-            publishJobFailure(codePipelineClient, build, "Build failed");
+            publishJobFailure(build, "Build failed");
           } else if (BuildFinishedStatus.INTERRUPTED == buildStatus) {
-            publishJobFailure(codePipelineClient, build, "Build interrupted");
+            publishJobFailure(build, "Build interrupted");
           } else {
             final Map<String, String> params = build.getSharedConfigParameters();
             final JobData jobData = getJobData(codePipelineClient, params);
@@ -173,25 +274,32 @@ public class CodePipelineBuildListener extends AgentLifeCycleAdapter {
             } else {
               final File artifactOutputFolder = new File(params.get(ARTIFACT_OUTPUT_FOLDER_CONFIG_PARAM));
 
-              S3Util.withTransferManager(getArtifactS3Client(jobData.getArtifactCredentials(), params), new S3Util.WithTransferManager<Upload>() {
+              final List<File> buildArtifacts = new ArrayList<File>();
+              final List<Long> sizes = new ArrayList<Long>();
+              for (Artifact artifact : outputArtifacts) {
+                final File buildArtifact = getBuildArtifact(artifact, jobData.getPipelineContext().getPipelineName(), artifactOutputFolder, build);
+                buildArtifacts.add(buildArtifact);
+                sizes.add(buildArtifact.length());
+              }
+
+              CodePipelineArtifactStaging.withTransferManager(getArtifactS3Client(jobData.getArtifactCredentials(), params), sizes, new S3Util.WithTransferManager<Upload>() {
                 @NotNull
                 @Override
                 public Collection<Upload> run(@NotNull final TransferManager manager) throws Throwable {
-                  return CollectionsUtil.convertCollection(outputArtifacts, new Converter<Upload, Artifact>() {
-                    @Override
-                    public Upload createFrom(@NotNull Artifact artifact) {
-                      final File buildArtifact = getBuildArtifact(artifact, jobData.getPipelineContext().getPipelineName(), artifactOutputFolder, build);
-                      final S3ArtifactLocation s3Location = artifact.getLocation().getS3Location();
-
-                      build.getBuildLogger().message("Uploading job output artifact " + s3Location.getObjectKey() + " from " + buildArtifact.getAbsolutePath());
-                      return manager.upload(new PutObjectRequest(s3Location.getBucketName(), s3Location.getObjectKey(), buildArtifact)
-                        .withSSEAwsKeyManagementParams(getSSEAwsKeyManagementParams(jobData.getEncryptionKey())));
-                    }
-                  });
+                  final List<Upload> uploads = new ArrayList<Upload>();
+                  for (int i = 0; i < outputArtifacts.size(); ++i) {
+                    final File buildArtifact = buildArtifacts.get(i);
+                    final S3ArtifactLocation s3Location = outputArtifacts.get(i).getLocation().getS3Location();
+
+                    build.getBuildLogger().message("Uploading job output artifact " + s3Location.getObjectKey() + " from " + buildArtifact.getAbsolutePath());
+                    uploads.add(manager.upload(new PutObjectRequest(s3Location.getBucketName(), s3Location.getObjectKey(), buildArtifact)
+                      .withSSEAwsKeyManagementParams(getSSEAwsKeyManagementParams(jobData.getEncryptionKey()))));
+                  }
+                  return uploads;
                 }
               });
             }
-            publishJobSuccess(codePipelineClient, build);
+            publishJobSuccess(build);
           }
         } catch (Throwable e) {
           failOnException(codePipelineClient, build, e);
@@ -207,27 +315,13 @@ public class CodePipelineBuildListener extends AgentLifeCycleAdapter {
       ? new SSEAwsKeyManagementParams() : new SSEAwsKeyManagementParams(encryptionKey.getId());
   }
 
-  private void publishJobSuccess(@NotNull AWSCodePipelineClient codePipelineClient, @NotNull AgentRunningBuild build) {
-    codePipelineClient.putJobSuccessResult(
-      new PutJobSuccessResultRequest().withJobId(myJobID).withExecutionDetails(
-        new ExecutionDetails().withExternalExecutionId(String.valueOf(build.getBuildId())).withSummary("Build successfully finished")
-      )
-    );
+  private void publishJobSuccess(@NotNull AgentRunningBuild build) {
+    myJobResultOutbox.publishJobSuccess(myJobID, build);
   }
 
-  private void publishJobFailure(@NotNull AWSCodePipelineClient codePipelineClient, @NotNull AgentRunningBuild build, @NotNull String message) {
+  private void publishJobFailure(@NotNull AgentRunningBuild build, @NotNull String message) {
     try {
-      codePipelineClient.putJobFailureResult(
-        new PutJobFailureResultRequest().withJobId(myJobID).withFailureDetails(
-          new FailureDetails()
-            .withExternalExecutionId(String.valueOf(build.getBuildId()))
-            .withType(FailureType.JobFailed)
-            .withMessage(message)
-        )
-      );
-    } catch (Throwable e) {
-      LOG.error(msgForBuild(e.getMessage(), build), e);
-      build.getBuildLogger().exception(e);
+      myJobResultOutbox.publishJobFailure(myJobID, build, message);
     } finally {
       myJobID = null;
     }
@@ -250,7 +344,7 @@ public class CodePipelineBuildListener extends AgentLifeCycleAdapter {
     build.getBuildLogger().logBuildProblem(createBuildProblem(build, e));
 
     if (codePipelineClient != null) {
-      publishJobFailure(codePipelineClient, build, e.getMessage());
+      publishJobFailure(build, e.getMessage());
     }
   }
 
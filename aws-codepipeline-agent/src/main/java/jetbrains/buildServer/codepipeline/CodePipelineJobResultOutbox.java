@@ -0,0 +1,448 @@
+package jetbrains.buildServer.codepipeline;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.codepipeline.AWSCodePipelineClient;
+import com.amazonaws.services.codepipeline.model.*;
+import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.AWSClients;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent agent-side queue of AWS CodePipeline job results.
+ * <p>
+ * Each result is stored as a separate file named by the job ID, so a job result is reported only once
+ * and survives agent restarts. Results are delivered by a background thread with exponential backoff,
+ * builds don't wait for the AWS round trip.
+ * <p>
+ * Secret AWS parameters are never written to disk, they are kept in memory only. Results which need them
+ * get the last delivery attempt on agent shutdown and can't be reported after agent restart.
+ *
+ * @author vbedrosova
+ */
+public class CodePipelineJobResultOutbox extends AgentLifeCycleAdapter {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(CodePipelineJobResultOutbox.class);
+
+  private static final String OUTBOX_FOLDER = "codepipeline/outbox";
+  private static final String ENTRY_EXTENSION = ".properties";
+  private static final String TEMP_EXTENSION = ".tmp";
+
+  private static final String JOB_ID = "jobId";
+  private static final String BUILD_ID = "buildId";
+  private static final String SUCCESS = "success";
+  private static final String MESSAGE = "message";
+  private static final String CREATED = "created";
+  private static final String ATTEMPTS = "attempts";
+  private static final String NEXT_ATTEMPT = "nextAttempt";
+  private static final String HAS_SECRETS = "hasSecrets";
+  private static final String PARAM_PREFIX = "param.";
+
+  private static final long SCAN_INTERVAL_SEC = 5;
+  private static final long INITIAL_RETRY_DELAY_MS = 5 * 1000L;
+  private static final long MAX_RETRY_DELAY_MS = 10 * 60 * 1000L;
+  private static final long MAX_ENTRY_AGE_MS = 24 * 60 * 60 * 1000L;
+  private static final long SHUTDOWN_TIMEOUT_SEC = 30;
+
+  @NotNull
+  private final File myOutboxFolder;
+  @NotNull
+  private final ScheduledExecutorService myExecutor;
+  @NotNull
+  private final Map<String, Map<String, String>> mySecretParams = new ConcurrentHashMap<String, Map<String, String>>();
+  private volatile boolean myStopping;
+
+  public CodePipelineJobResultOutbox(@NotNull final EventDispatcher<AgentLifeCycleListener> agentDispatcher,
+                                     @NotNull final BuildAgentConfiguration agentConfiguration) {
+    myOutboxFolder = new File(agentConfiguration.getSystemDirectory(), OUTBOX_FOLDER);
+    myExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "AWS CodePipeline job result sender");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    agentDispatcher.addListener(this);
+  }
+
+  @Override
+  public void agentStarted(@NotNull BuildAgent agent) {
+    recoverTempEntries();
+
+    // results left from the previous agent run are picked up by the first scan
+    myExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        sendPending();
+      }
+    }, 0, SCAN_INTERVAL_SEC, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void agentShutdown() {
+    // results which need in-memory secrets can't be reported after restart, so give them the last chance
+    try {
+      myExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          sendEntriesWithSecrets();
+        }
+      });
+    } catch (RejectedExecutionException ignored) {
+    }
+    myExecutor.shutdown();
+    try {
+      if (!myExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+        myStopping = true;
+        myExecutor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      myStopping = true;
+      myExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+
+    final List<String> abandoned = new ArrayList<String>();
+    for (String jobId : mySecretParams.keySet()) {
+      if (getEntryFile(jobId).isFile()) abandoned.add(jobId);
+    }
+    if (!abandoned.isEmpty()) {
+      LOG.error("Agent is stopping, AWS CodePipeline job results which need AWS credentials not stored on disk are abandoned for the jobs with IDs:\n" + CodePipelineUtil.printStrings(abandoned));
+    }
+  }
+
+  public void publishJobSuccess(@NotNull String jobId, @NotNull AgentRunningBuild build) {
+    publish(jobId, build, true, "Build successfully finished");
+  }
+
+  public void publishJobFailure(@NotNull String jobId, @NotNull AgentRunningBuild build, @NotNull String message) {
+    publish(jobId, build, false, message);
+  }
+
+  private void publish(@NotNull String jobId, @NotNull AgentRunningBuild build, boolean success, @NotNull String message) {
+    final File entryFile = getEntryFile(jobId);
+    if (entryFile.isFile()) {
+      LOG.debug(build + ":\nResult for the AWS CodePipeline job with ID: " + jobId + " is already queued, ignoring " + (success ? "success" : "failure: " + message));
+      return;
+    }
+
+    final Properties entry = new Properties();
+    entry.setProperty(JOB_ID, jobId);
+    entry.setProperty(BUILD_ID, String.valueOf(build.getBuildId()));
+    entry.setProperty(SUCCESS, String.valueOf(success));
+    entry.setProperty(MESSAGE, message);
+    entry.setProperty(CREATED, String.valueOf(System.currentTimeMillis()));
+    entry.setProperty(ATTEMPTS, "0");
+    entry.setProperty(NEXT_ATTEMPT, "0");
+
+    final Map<String, String> secretParams = new HashMap<String, String>();
+    for (Map.Entry<String, String> p : build.getSharedConfigParameters().entrySet()) {
+      if (!isAWSParam(p.getKey())) continue;
+      if (isSecretParam(p.getKey())) {
+        secretParams.put(p.getKey(), p.getValue());
+      } else {
+        entry.setProperty(PARAM_PREFIX + p.getKey(), p.getValue());
+      }
+    }
+    entry.setProperty(HAS_SECRETS, String.valueOf(!secretParams.isEmpty()));
+    if (!secretParams.isEmpty()) mySecretParams.put(jobId, secretParams);
+
+    try {
+      writeEntry(entryFile, entry);
+    } catch (IOException e) {
+      LOG.warn(build + ":\nFailed to store AWS CodePipeline job result to " + entryFile + ", will report it right away", e);
+      try {
+        deliver(entry, secretParams);
+      } catch (Throwable t) {
+        LOG.error(build + ":\n" + t.getMessage(), t);
+        build.getBuildLogger().exception(t);
+      } finally {
+        mySecretParams.remove(jobId);
+      }
+      return;
+    }
+
+    build.getBuildLogger().message("Reporting " + (success ? "success" : "failure") + " of the AWS CodePipeline job with ID: " + jobId);
+    try {
+      myExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          sendPending();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.debug("AWS CodePipeline job result sender is stopped, result for the job with ID: " + jobId + " will be reported after agent restart");
+    }
+  }
+
+  private void sendPending() {
+    final File[] files = myOutboxFolder.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(ENTRY_EXTENSION);
+      }
+    });
+    if (files == null) return;
+
+    for (File f : files) {
+      if (Thread.currentThread().isInterrupted()) return;
+      try {
+        sendEntry(f, false);
+      } catch (Throwable e) {
+        LOG.error("Failed to process AWS CodePipeline job result " + f, e);
+      }
+    }
+  }
+
+  private void sendEntriesWithSecrets() {
+    for (String jobId : mySecretParams.keySet()) {
+      final File entryFile = getEntryFile(jobId);
+      if (!entryFile.isFile()) continue;
+      try {
+        sendEntry(entryFile, true);
+      } catch (Throwable e) {
+        LOG.error("Failed to process AWS CodePipeline job result " + entryFile, e);
+      }
+    }
+  }
+
+  private void sendEntry(@NotNull File entryFile, boolean ignoreBackoff) throws IOException {
+    final Properties entry = readEntry(entryFile);
+    final long now = System.currentTimeMillis();
+    if (!ignoreBackoff && getLong(entry, NEXT_ATTEMPT) > now) return;
+
+    final String jobId = entry.getProperty(JOB_ID);
+    if (!isComplete(entry)) {
+      LOG.error("Dropping malformed AWS CodePipeline job result " + entryFile);
+      FileUtil.delete(entryFile);
+      return;
+    }
+
+    Map<String, String> secretParams = Collections.emptyMap();
+    if (Boolean.parseBoolean(entry.getProperty(HAS_SECRETS))) {
+      secretParams = mySecretParams.get(jobId);
+      if (secretParams == null) {
+        LOG.error("Dropping AWS CodePipeline job result for the job with ID: " + jobId + ": AWS credentials are not stored on disk and were lost on agent restart");
+        FileUtil.delete(entryFile);
+        return;
+      }
+    }
+
+    try {
+      deliver(entry, secretParams);
+      LOG.debug("Reported AWS CodePipeline job result for the job with ID: " + jobId);
+      dropEntry(entryFile, jobId);
+    } catch (JobNotFoundException e) {
+      LOG.warn("Dropping AWS CodePipeline job result: " + e.getMessage());
+      dropEntry(entryFile, jobId);
+    } catch (InvalidJobStateException e) {
+      LOG.warn("Dropping AWS CodePipeline job result: " + e.getMessage());
+      dropEntry(entryFile, jobId);
+    } catch (Exception e) {
+      if (e instanceof AbortedException || myStopping || Thread.currentThread().isInterrupted()) {
+        // the agent is stopping, keep the entry as is
+        LOG.debug("Reporting AWS CodePipeline job result for the job with ID: " + jobId + " was interrupted");
+        return;
+      }
+      final long attempts = getLong(entry, ATTEMPTS) + 1;
+      if (!isRetryable(e)) {
+        LOG.error("Failed to report AWS CodePipeline job result for the job with ID: " + jobId + ", dropping it", e);
+        dropEntry(entryFile, jobId);
+        return;
+      }
+      if (now - getLong(entry, CREATED) > MAX_ENTRY_AGE_MS) {
+        LOG.error("Giving up reporting AWS CodePipeline job result for the job with ID: " + jobId + " after " + attempts + " attempts", e);
+        dropEntry(entryFile, jobId);
+        return;
+      }
+      final long delay = Math.min(INITIAL_RETRY_DELAY_MS << Math.min(attempts - 1, 16), MAX_RETRY_DELAY_MS);
+      LOG.warn("Failed to report AWS CodePipeline job result for the job with ID: " + jobId + ", will retry in " + delay / 1000 + " seconds: " + e.getMessage());
+
+      entry.setProperty(ATTEMPTS, String.valueOf(attempts));
+      entry.setProperty(NEXT_ATTEMPT, String.valueOf(now + delay));
+      writeEntry(entryFile, entry);
+    }
+  }
+
+  private void dropEntry(@NotNull File entryFile, @NotNull String jobId) {
+    FileUtil.delete(entryFile);
+    mySecretParams.remove(jobId);
+  }
+
+  private void deliver(@NotNull final Properties entry, @NotNull Map<String, String> secretParams) {
+    final Map<String, String> params = getParams(entry);
+    params.putAll(secretParams);
+
+    final String jobId = entry.getProperty(JOB_ID);
+    final String buildId = entry.getProperty(BUILD_ID);
+    final String message = entry.getProperty(MESSAGE);
+    final boolean success = Boolean.parseBoolean(entry.getProperty(SUCCESS));
+
+    AWSCommonParams.withAWSClients(params, new AWSCommonParams.WithAWSClients<Void, RuntimeException>() {
+      @Nullable
+      @Override
+      public Void run(@NotNull AWSClients clients) throws RuntimeException {
+        final AWSCodePipelineClient codePipelineClient = clients.createCodePipeLineClient();
+        if (success) {
+          codePipelineClient.putJobSuccessResult(
+            new PutJobSuccessResultRequest().withJobId(jobId).withExecutionDetails(
+              new ExecutionDetails().withExternalExecutionId(buildId).withSummary(message)
+            )
+          );
+        } else {
+          codePipelineClient.putJobFailureResult(
+            new PutJobFailureResultRequest().withJobId(jobId).withFailureDetails(
+              new FailureDetails()
+                .withExternalExecutionId(buildId)
+                .withType(FailureType.JobFailed)
+                .withMessage(message)
+            )
+          );
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Restores entries which were written but not yet renamed when the agent stopped
+   */
+  private void recoverTempEntries() {
+    final File[] files = myOutboxFolder.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(ENTRY_EXTENSION + TEMP_EXTENSION);
+      }
+    });
+    if (files == null) return;
+
+    for (File tmp : files) {
+      final File entryFile = new File(myOutboxFolder, tmp.getName().substring(0, tmp.getName().length() - TEMP_EXTENSION.length()));
+      if (entryFile.isFile()) {
+        // the entry itself is still there, the temporary file is an unfinished update of its retry state
+        FileUtil.delete(tmp);
+        continue;
+      }
+      try {
+        final Properties entry = readEntry(tmp);
+        if (isComplete(entry)) {
+          if (tmp.renameTo(entryFile)) {
+            LOG.info("Restored AWS CodePipeline job result for the job with ID: " + entry.getProperty(JOB_ID) + " from " + tmp);
+            continue;
+          }
+          LOG.error("Failed to rename " + tmp + " to " + entryFile + ", AWS CodePipeline job result for the job with ID: " + entry.getProperty(JOB_ID) + " is lost");
+        } else {
+          LOG.error("AWS CodePipeline job result " + tmp + " was not completely written before agent stop and is lost");
+        }
+      } catch (IOException e) {
+        LOG.error("Failed to read AWS CodePipeline job result " + tmp + ", it is lost", e);
+      }
+      FileUtil.delete(tmp);
+    }
+  }
+
+  @NotNull
+  private File getEntryFile(@NotNull String jobId) {
+    return new File(myOutboxFolder, FileUtil.fixDirectoryName(jobId) + ENTRY_EXTENSION);
+  }
+
+  private static boolean isComplete(@NotNull Properties entry) {
+    for (String key : new String[] {JOB_ID, BUILD_ID, SUCCESS, MESSAGE, CREATED, HAS_SECRETS}) {
+      if (StringUtil.isEmpty(entry.getProperty(key))) return false;
+    }
+    return true;
+  }
+
+  private static boolean isRetryable(@NotNull Exception e) {
+    if (e instanceof AmazonServiceException) {
+      final AmazonServiceException se = (AmazonServiceException) e;
+      return RetryUtils.isThrottlingException(se) || se.getStatusCode() == 429 || se.getStatusCode() >= 500;
+    }
+    // no service response because of a network problem, other client errors (e.g. missing credentials) won't go away
+    return e instanceof AmazonClientException && e.getCause() instanceof IOException;
+  }
+
+  private static boolean isAWSParam(@NotNull String key) {
+    return key.startsWith("aws.") || key.startsWith("secure:aws.");
+  }
+
+  private static boolean isSecretParam(@NotNull String key) {
+    return key.startsWith("secure:") || key.contains("secret");
+  }
+
+  @NotNull
+  private static Map<String, String> getParams(@NotNull Properties entry) {
+    final Map<String, String> params = new HashMap<String, String>();
+    for (String key : entry.stringPropertyNames()) {
+      if (key.startsWith(PARAM_PREFIX)) params.put(key.substring(PARAM_PREFIX.length()), entry.getProperty(key));
+    }
+    return params;
+  }
+
+  private static long getLong(@NotNull Properties entry, @NotNull String key) {
+    final String value = entry.getProperty(key);
+    if (StringUtil.isEmpty(value)) return 0;
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  @NotNull
+  private static Properties readEntry(@NotNull File entryFile) throws IOException {
+    final Properties entry = new Properties();
+    InputStream in = null;
+    try {
+      in = new FileInputStream(entryFile);
+      entry.load(in);
+    } finally {
+      FileUtil.close(in);
+    }
+    return entry;
+  }
+
+  private static void writeEntry(@NotNull File entryFile, @NotNull Properties entry) throws IOException {
+    FileUtil.createParentDirs(entryFile);
+
+    // write to a temporary file first so that the sender never reads a partially written entry
+    final File tmp = new File(entryFile.getParentFile(), entryFile.getName() + TEMP_EXTENSION);
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(tmp);
+      entry.store(out, null);
+    } finally {
+      FileUtil.close(out);
+    }
+    if (!tmp.renameTo(entryFile)) {
+      FileUtil.delete(entryFile);
+      if (!tmp.renameTo(entryFile)) {
+        FileUtil.delete(tmp);
+        throw new IOException("Failed to rename " + tmp + " to " + entryFile);
+      }
+    }
+  }
+}
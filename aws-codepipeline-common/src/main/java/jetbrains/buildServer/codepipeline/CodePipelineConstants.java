@@ -29,4 +29,5 @@ public interface CodePipelineConstants {
 
   String ARTIFACT_INPUT_FOLDER_CONFIG_PARAM = "codepipeline.artifact.input.folder";
   String ARTIFACT_OUTPUT_FOLDER_CONFIG_PARAM = "codepipeline.artifact.output.folder";
+  String ARTIFACT_STAGING_FOLDERS_CONFIG_PARAM = "codepipeline.artifact.staging.folders";
 }
\ No newline at end of file